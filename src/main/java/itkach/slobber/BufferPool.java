@@ -0,0 +1,157 @@
+package itkach.slobber;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable direct byte buffers in power of two size classes.
+ *
+ * Buffers taken with {@link #lease(int)} belong to the response being
+ * handled on the current thread and are returned to the pool with
+ * {@link #releaseLeases()} once that response is closed. Larger
+ * content must be written in slices of at most {@link #getMaxBufferSize()}
+ * bytes through one leased buffer.
+ */
+class BufferPool {
+
+    final static int MIN_SHIFT = 12;
+
+    private final int maxShift;
+    private final int maxPerClass;
+    private final long maxIdleBytes;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final List<Queue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCounts;
+
+    private final AtomicLong leased = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    private final ThreadLocal<List<ByteBuffer>> leases = new ThreadLocal<List<ByteBuffer>>() {
+        @Override
+        protected List<ByteBuffer> initialValue() {
+            return new ArrayList<ByteBuffer>(2);
+        }
+    };
+
+    /**
+     * @param maxBufferSize largest pooled buffer size, rounded up to a power of two
+     * @param maxPerClass   number of idle buffers kept for each size class
+     * @param maxIdleBytes  total capacity of idle buffers kept in all classes
+     */
+    BufferPool(int maxBufferSize, int maxPerClass, long maxIdleBytes) {
+        this.maxShift = Math.max(MIN_SHIFT, shiftFor(maxBufferSize));
+        this.maxPerClass = maxPerClass;
+        this.maxIdleBytes = maxIdleBytes;
+        int classCount = maxShift - MIN_SHIFT + 1;
+        this.free = new ArrayList<Queue<ByteBuffer>>(classCount);
+        this.freeCounts = new AtomicInteger[classCount];
+        for (int i = 0; i < classCount; i++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    static int shiftFor(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    int getMaxBufferSize() {
+        return 1 << maxShift;
+    }
+
+    /**
+     * Returns a cleared buffer with at least {@code size} bytes remaining.
+     * The buffer stays leased to the current thread until
+     * {@link #releaseLeases()} is called.
+     *
+     * @throws IllegalArgumentException if {@code size} is larger than
+     *         {@link #getMaxBufferSize()}
+     */
+    ByteBuffer lease(int size) {
+        int shift = shiftFor(size);
+        if (shift > maxShift) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't lease %d bytes, max buffer size is %d", size, getMaxBufferSize()));
+        }
+        int sizeClass = shift - MIN_SHIFT;
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(1 << shift);
+        }
+        else {
+            freeCounts[sizeClass].decrementAndGet();
+            idleBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+        }
+        buffer.limit(size);
+        leased.incrementAndGet();
+        leases.get().add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Returns all buffers leased on the current thread to the pool.
+     * Must only be called once nothing refers to those buffers any more,
+     * i.e. after the response has been closed.
+     */
+    void releaseLeases() {
+        List<ByteBuffer> current = leases.get();
+        if (current.isEmpty()) {
+            return;
+        }
+        for (ByteBuffer buffer : current) {
+            released.incrementAndGet();
+            int capacity = buffer.capacity();
+            int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+            boolean classFull = freeCounts[sizeClass].incrementAndGet() > maxPerClass;
+            if (!classFull && idleBytes.addAndGet(capacity) <= maxIdleBytes) {
+                free.get(sizeClass).offer(buffer);
+            }
+            else {
+                //pool is full, leave the buffer to the garbage collector
+                freeCounts[sizeClass].decrementAndGet();
+                if (!classFull) {
+                    idleBytes.addAndGet(-capacity);
+                }
+            }
+        }
+        current.clear();
+    }
+
+    /**
+     * Number of buffers leased and not yet released. Stays at or near
+     * the number of in-flight responses; steady growth means a leak.
+     */
+    long getOutstanding() {
+        return leased.get() - released.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("BufferPool[leased=").append(leased.get());
+        s.append(", released=").append(released.get());
+        s.append(", outstanding=").append(getOutstanding());
+        s.append(", allocated=").append(allocated.get());
+        s.append(", idleBytes=").append(idleBytes.get());
+        s.append(", free=");
+        for (int i = 0; i < freeCounts.length; i++) {
+            if (i > 0) {
+                s.append('/');
+            }
+            s.append(freeCounts[i].get());
+        }
+        s.append(']');
+        return s.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package itkach.slobber;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * HTTP server implementation Slobber's handlers run on.
+ *
+ * Handlers only see {@link Request} and {@link Response}, so the
+ * underlying server can be swapped with the {@code slobber.engine}
+ * property, see {@link Factory#forName(String)}.
+ */
+public interface HttpEngine {
+
+    interface Request {
+
+        String getMethod();
+
+        /**
+         * Request path as sent by the client with dot segments resolved,
+         * without query. Path is not URL decoded.
+         */
+        String getPath();
+
+        /**
+         * Path split on '/', empty segments omitted. Segments are not
+         * URL decoded.
+         */
+        String[] getSegments();
+
+        /**
+         * Extension of the last path segment, or {@code null}.
+         */
+        String getExtension();
+
+        /**
+         * First value of the named query parameter, URL decoded,
+         * or {@code null}.
+         */
+        String getParameter(String name);
+
+        String getQueryString();
+
+        String getValue(String headerName);
+    }
+
+    interface Response {
+
+        void setCode(int code);
+
+        int getCode();
+
+        /**
+         * Sets header, a {@code null} value removes it.
+         */
+        void setValue(String name, String value);
+
+        void setDate(String name, long date);
+
+        void setContentLength(long length);
+
+        OutputStream getOutputStream() throws IOException;
+
+        PrintStream getPrintStream() throws IOException;
+
+        /**
+         * Writes remaining bytes of the buffer as (part of) response body.
+         */
+        void write(ByteBuffer bytes) throws IOException;
+
+        /**
+         * Completes the response, sending headers if no body was written.
+         */
+        void close() throws IOException;
+    }
+
+    interface Handler {
+
+        void handle(Request req, Response resp);
+    }
+
+    interface Server {
+
+        void stop() throws IOException;
+    }
+
+    String getName();
+
+    Server start(Handler handler, SocketAddress address, int threads) throws IOException;
+
+    class Factory {
+
+        /**
+         * @param name "simple" (default) or "jdk"
+         */
+        public static HttpEngine forName(String name) {
+            if (name == null || name.equals("simple")) {
+                return new SimpleEngine();
+            }
+            if (name.equals("jdk")) {
+                return new JdkEngine();
+            }
+            throw new IllegalArgumentException("Unknown HTTP engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package itkach.slobber;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link HttpEngine} backed by the JDK's built-in NIO HTTP server
+ * ({@code com.sun.net.httpserver}) running handlers on a fixed size pool.
+ * Connections are kept alive between requests, bodies of unknown
+ * length are sent chunked.
+ */
+class JdkEngine implements HttpEngine {
+
+    final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final static ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    private final static ThreadLocal<DateFormat> dateFormats = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return df;
+        }
+    };
+
+    static class JdkRequest implements Request {
+
+        private final HttpExchange exchange;
+        private String path;
+        private String[] segments;
+        private Map<String, String> params;
+
+        JdkRequest(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public String getMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        /**
+         * Request path with dot segments resolved, like Simple's
+         * {@code PathParser} does, so that handlers never see {@code ..}.
+         * Back references above the root are dropped.
+         */
+        @Override
+        public String getPath() {
+            if (path == null) {
+                String p = exchange.getRequestURI().normalize().getRawPath();
+                if (p == null || !p.startsWith("/")) {
+                    p = "/" + (p == null ? "" : p);
+                }
+                while (p.equals("/..") || p.startsWith("/../")) {
+                    p = p.substring(3);
+                    if (p.isEmpty()) {
+                        p = "/";
+                    }
+                }
+                path = p;
+            }
+            return path;
+        }
+
+        @Override
+        public String[] getSegments() {
+            if (segments == null) {
+                List<String> result = new ArrayList<String>();
+                for (String segment : getPath().split("/")) {
+                    if (segment.length() > 0) {
+                        result.add(segment);
+                    }
+                }
+                segments = result.toArray(new String[result.size()]);
+            }
+            return segments;
+        }
+
+        @Override
+        public String getExtension() {
+            String[] s = getSegments();
+            if (s.length == 0) {
+                return null;
+            }
+            String last = s[s.length - 1];
+            int dot = last.lastIndexOf('.');
+            if (dot < 0 || dot == last.length() - 1) {
+                return null;
+            }
+            return last.substring(dot + 1);
+        }
+
+        @Override
+        public String getParameter(String name) {
+            if (params == null) {
+                params = new HashMap<String, String>();
+                String query = exchange.getRequestURI().getRawQuery();
+                if (query != null) {
+                    for (String pair : query.split("&")) {
+                        int eq = pair.indexOf('=');
+                        String key = decode(eq < 0 ? pair : pair.substring(0, eq));
+                        String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+                        if (!params.containsKey(key)) {
+                            params.put(key, value);
+                        }
+                    }
+                }
+            }
+            return params.get(name);
+        }
+
+        private static String decode(String s) {
+            try {
+                return URLDecoder.decode(s, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                return s;
+            }
+            catch (IllegalArgumentException e) {
+                //malformed escape, keep as is
+                return s;
+            }
+        }
+
+        @Override
+        public String getQueryString() {
+            String query = exchange.getRequestURI().getRawQuery();
+            return query == null ? "" : query;
+        }
+
+        @Override
+        public String getValue(String headerName) {
+            return exchange.getRequestHeaders().getFirst(headerName);
+        }
+
+        @Override
+        public String toString() {
+            return exchange.getRequestMethod() + " " + exchange.getRequestURI();
+        }
+    }
+
+    static class JdkResponse implements Response {
+
+        private final HttpExchange exchange;
+        private int code = 200;
+        private long contentLength = -1;
+        private OutputStream body;
+        private PrintStream printStream;
+
+        JdkResponse(HttpExchange exchange) {
+            this.exchange = exchange;
+            setValue("Server", "Slobber/1.0 (JDK HttpServer)");
+        }
+
+        @Override
+        public void setCode(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public int getCode() {
+            return code;
+        }
+
+        @Override
+        public void setValue(String name, String value) {
+            if (value == null) {
+                exchange.getResponseHeaders().remove(name);
+            }
+            else {
+                exchange.getResponseHeaders().set(name, value);
+            }
+        }
+
+        @Override
+        public void setDate(String name, long date) {
+            setValue(name, dateFormats.get().format(new Date(date)));
+        }
+
+        @Override
+        public void setContentLength(long length) {
+            this.contentLength = length;
+        }
+
+        private OutputStream commit() throws IOException {
+            if (body == null) {
+                long length;
+                if (contentLength == 0 || code == 304
+                        || exchange.getRequestMethod().equals("HEAD")) {
+                    length = -1;
+                }
+                else if (contentLength > 0) {
+                    length = contentLength;
+                }
+                else {
+                    //chunked
+                    length = 0;
+                }
+                exchange.sendResponseHeaders(code, length);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return commit();
+        }
+
+        @Override
+        public PrintStream getPrintStream() throws IOException {
+            if (printStream == null) {
+                printStream = new PrintStream(getOutputStream(), false, "UTF-8");
+            }
+            return printStream;
+        }
+
+        @Override
+        public void write(ByteBuffer bytes) throws IOException {
+            OutputStream out = commit();
+            if (bytes.hasArray()) {
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                bytes.position(bytes.limit());
+                return;
+            }
+            byte[] buf = copyBuffers.get();
+            while (bytes.hasRemaining()) {
+                int n = Math.min(buf.length, bytes.remaining());
+                bytes.get(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (body == null) {
+                    exchange.sendResponseHeaders(code, -1);
+                }
+                else {
+                    if (printStream != null) {
+                        printStream.flush();
+                    }
+                    body.close();
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "jdk";
+    }
+
+    @Override
+    public Server start(final Handler handler, SocketAddress address, int threads)
+            throws IOException {
+        final HttpServer server = HttpServer.create((InetSocketAddress) address, 0);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handler.handle(new JdkRequest(exchange), new JdkResponse(exchange));
+            }
+        });
+        server.start();
+        return new Server() {
+            @Override
+            public void stop() throws IOException {
+                server.stop(0);
+                executor.shutdown();
+            }
+        };
+    }
+}
@@ -0,0 +1,444 @@
+package itkach.slobber;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays request lines logged by {@link Slobber#handle} against a running
+ * Slobber instance and reports throughput, errors and latency percentiles
+ * per endpoint.
+ *
+ * Requests are sent open loop: each one is scheduled at a fixed time
+ * (either its recorded time divided by {@code slobber.replay.speedup} or
+ * evenly spaced at {@code slobber.replay.rate} requests per second) no
+ * matter how long earlier requests take, and latency is measured from
+ * that scheduled time, so a slow server shows up as queueing delay
+ * rather than as a lower send rate.
+ *
+ * Requests that could not be sent or got a server error are counted as
+ * failed. Requests answered with a different status than logged are
+ * only reported as mismatched: logged conditional requests are replayed
+ * without validators, so a logged 304 answered with 200 is expected and
+ * counted as a match.
+ *
+ * Exits with status 1 if {@code slobber.replay.maxErrorRate} (failed
+ * requests only) or {@code slobber.replay.maxP99Ms} is set and exceeded,
+ * so it can be used as a regression gate.
+ */
+public class LoadReplay {
+
+    final static Logger L = Logger.getLogger(LoadReplay.class.getName());
+
+    final static Pattern LOG_LINE = Pattern.compile(
+            "^(\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3}) ([A-Z]+) (\\S+) (\\d{3})$");
+
+    static class LoggedRequest {
+        final long time;
+        final String method;
+        final String pathAndQuery;
+        final int status;
+
+        LoggedRequest(long time, String method, String pathAndQuery, int status) {
+            this.time = time;
+            this.method = method;
+            this.pathAndQuery = pathAndQuery;
+            this.status = status;
+        }
+
+        String getEndpoint() {
+            int start = pathAndQuery.startsWith("/") ? 1 : 0;
+            int end = start;
+            while (end < pathAndQuery.length()) {
+                char c = pathAndQuery.charAt(end);
+                if (c == '/' || c == '?') {
+                    break;
+                }
+                end++;
+            }
+            String endpoint = "/" + pathAndQuery.substring(start, end);
+            if (!endpoint.equals("/slob")) {
+                return endpoint;
+            }
+            //slob list, slob info and content have very different costs
+            int query = pathAndQuery.indexOf('?');
+            String path = query < 0 ? pathAndQuery : pathAndQuery.substring(0, query);
+            int segments = 0;
+            for (String segment : path.split("/")) {
+                if (segment.length() > 0) {
+                    segments++;
+                }
+            }
+            if (segments <= 1) {
+                return endpoint;
+            }
+            return segments == 2 ? "/slob/{id}" : "/slob/{id}/{key}";
+        }
+
+        boolean matches(int replayedStatus) {
+            return replayedStatus == status
+                    || (status == 304 && replayedStatus == 200);
+        }
+    }
+
+    final static Comparator<LoggedRequest> BY_TIME = new Comparator<LoggedRequest>() {
+        @Override
+        public int compare(LoggedRequest a, LoggedRequest b) {
+            return Long.compare(a.time, b.time);
+        }
+    };
+
+    static List<LoggedRequest> readLog(InputStream in) throws IOException {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<LoggedRequest> requests = new ArrayList<LoggedRequest>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher m = LOG_LINE.matcher(line.trim());
+            if (!m.matches()) {
+                continue;
+            }
+            long time;
+            try {
+                time = df.parse(m.group(1)).getTime();
+            } catch (ParseException e) {
+                continue;
+            }
+            requests.add(new LoggedRequest(time, m.group(2), m.group(3),
+                    Integer.parseInt(m.group(4))));
+        }
+        return requests;
+    }
+
+    /**
+     * Percent-encodes characters that may not appear in a request line
+     * as is. Simple logs decoded paths, so keys with spaces or non-ASCII
+     * characters need to be encoded again.
+     */
+    static String escape(String pathAndQuery) {
+        StringBuilder s = new StringBuilder(pathAndQuery.length());
+        byte[] bytes = pathAndQuery.getBytes(Charset.forName("UTF-8"));
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if (c <= 0x20 || c >= 0x7f || c == '"' || c == '<' || c == '>'
+                    || c == '\\' || c == '^' || c == '`' || c == '{'
+                    || c == '|' || c == '}') {
+                s.append(String.format("%%%02X", c));
+            }
+            else {
+                s.append((char) c);
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * Log-linear latency histogram in microseconds with 64 sub-buckets
+     * per power of two, i.e. values are recorded with better than 2%
+     * precision, much like HdrHistogram with 2 significant digits.
+     */
+    static class Histogram {
+
+        final static int SUB_BUCKET_BITS = 6;
+        final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[SUB_BUCKETS * 2 + SUB_BUCKETS * 48];
+        private long total;
+        private long sum;
+        private long max;
+
+        static int indexFor(long value) {
+            if (value < SUB_BUCKETS * 2) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+        }
+
+        static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS * 2) {
+                return index;
+            }
+            int shift = (index >>> SUB_BUCKET_BITS) - 1;
+            long sub = index - (shift << SUB_BUCKET_BITS);
+            return ((sub + 1) << shift) - 1;
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int index = Math.min(indexFor(value), counts.length - 1);
+            counts[index]++;
+            total++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        double getMean() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+
+        long getValueAtPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= countAtPercentile) {
+                    return Math.min(highestValueAt(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    static class EndpointStats {
+        final Histogram latency = new Histogram();
+        long failed;
+        long mismatched;
+
+        synchronized void record(long latencyMicros, boolean failed, boolean mismatched) {
+            latency.record(latencyMicros);
+            if (failed) {
+                this.failed++;
+            }
+            if (mismatched) {
+                this.mismatched++;
+            }
+        }
+
+        synchronized void add(EndpointStats other) {
+            latency.add(other.latency);
+            failed += other.failed;
+            mismatched += other.mismatched;
+        }
+
+        double getFailureRate() {
+            long n = latency.getTotal();
+            return n == 0 ? 0 : (double) failed / n;
+        }
+    }
+
+    private final String baseURL;
+    private final int connections;
+    private final Map<String, EndpointStats> stats = new TreeMap<String, EndpointStats>();
+
+    private final ThreadLocal<byte[]> drainBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    LoadReplay(String baseURL, int connections) {
+        this.baseURL = baseURL.endsWith("/")
+                ? baseURL.substring(0, baseURL.length() - 1) : baseURL;
+        this.connections = connections;
+    }
+
+    private synchronized EndpointStats statsFor(String endpoint) {
+        EndpointStats s = stats.get(endpoint);
+        if (s == null) {
+            s = new EndpointStats();
+            stats.put(endpoint, s);
+        }
+        return s;
+    }
+
+    private void send(LoggedRequest r, long scheduledNanos) {
+        boolean failed = false;
+        boolean mismatched = false;
+        HttpURLConnection conn = null;
+        try {
+            URL url = new URL(baseURL + escape(r.pathAndQuery));
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod(r.method);
+            conn.setUseCaches(false);
+            int status = conn.getResponseCode();
+            InputStream body = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (body != null) {
+                byte[] buf = drainBuffers.get();
+                while (body.read(buf) != -1) {
+                    //drain so that the connection can be reused
+                }
+                body.close();
+            }
+            if (status >= 500 && r.status < 500) {
+                failed = true;
+            }
+            else {
+                mismatched = !r.matches(status);
+            }
+        }
+        catch (IOException e) {
+            L.fine(String.format("%s %s failed: %s", r.method, r.pathAndQuery, e));
+            failed = true;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+        long latencyMicros = (System.nanoTime() - scheduledNanos) / 1000;
+        statsFor(r.getEndpoint()).record(latencyMicros, failed, mismatched);
+    }
+
+    /**
+     * Sends all requests and waits for them to complete.
+     *
+     * @param rate    requests per second, or 0 to use recorded timing
+     * @param speedup multiple of the recorded rate, used when rate is 0
+     * @return elapsed wall clock time in nanoseconds
+     */
+    long run(List<LoggedRequest> requests, double rate, double speedup)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        long start = System.nanoTime();
+        long firstLogged = requests.isEmpty() ? 0 : requests.get(0).time;
+        for (int i = 0; i < requests.size(); i++) {
+            final LoggedRequest r = requests.get(i);
+            long offset;
+            if (rate > 0) {
+                offset = (long) (i * 1e9 / rate);
+            }
+            else {
+                offset = (long) ((r.time - firstLogged) * 1e6 / speedup);
+            }
+            final long scheduled = start + offset;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(r, scheduled);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return System.nanoTime() - start;
+    }
+
+    EndpointStats report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        EndpointStats all = new EndpointStats();
+        out.printf("%-16s %8s %9s %7s %8s %9s %9s %9s %9s %9s %9s%n",
+                "endpoint", "count", "req/s", "failed", "mismatch",
+                "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        synchronized (this) {
+            for (Map.Entry<String, EndpointStats> e : stats.entrySet()) {
+                printRow(out, e.getKey(), e.getValue(), seconds);
+                all.add(e.getValue());
+            }
+        }
+        printRow(out, "total", all, seconds);
+        return all;
+    }
+
+    private static void printRow(PrintStream out, String name, EndpointStats s, double seconds) {
+        Histogram h = s.latency;
+        out.printf("%-16s %8d %9.1f %7d %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                name, h.getTotal(), seconds > 0 ? h.getTotal() / seconds : 0,
+                s.failed, s.mismatched,
+                h.getMean() / 1000,
+                h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0,
+                h.getMax() / 1000.0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: LoadReplay <access log>...");
+            System.exit(2);
+        }
+        String url = System.getProperty("slobber.replay.url", "http://127.0.0.1:8013");
+        int connections = Integer.getInteger("slobber.replay.connections", 32);
+        double rate = Double.parseDouble(System.getProperty("slobber.replay.rate", "0"));
+        double speedup = Double.parseDouble(System.getProperty("slobber.replay.speedup", "1"));
+        String maxErrorRate = System.getProperty("slobber.replay.maxErrorRate");
+        String maxP99Ms = System.getProperty("slobber.replay.maxP99Ms");
+
+        //keep one persistent connection per sender thread
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(connections));
+
+        List<LoggedRequest> requests = new ArrayList<LoggedRequest>();
+        for (String path : args) {
+            InputStream in = new FileInputStream(path);
+            try {
+                requests.addAll(readLog(in));
+            }
+            finally {
+                in.close();
+            }
+        }
+        //logs of several instances or rotated files may come in any order,
+        //recorded timing needs them in time order
+        Collections.sort(requests, BY_TIME);
+        System.out.printf("Replaying %d requests against %s with %d connections%n",
+                requests.size(), url, connections);
+
+        LoadReplay replay = new LoadReplay(url, connections);
+        long elapsed = replay.run(requests, rate, speedup);
+        EndpointStats all = replay.report(System.out, elapsed);
+
+        boolean pass = true;
+        if (all.mismatched > 0) {
+            System.out.printf("%d requests got a different status than logged%n", all.mismatched);
+        }
+        if (maxErrorRate != null && all.getFailureRate() > Double.parseDouble(maxErrorRate)) {
+            System.out.printf("FAIL: failure rate %.4f exceeds %s%n", all.getFailureRate(), maxErrorRate);
+            pass = false;
+        }
+        if (maxP99Ms != null) {
+            double p99 = all.latency.getValueAtPercentile(99) / 1000.0;
+            if (p99 > Double.parseDouble(maxP99Ms)) {
+                System.out.printf("FAIL: p99 %.2f ms exceeds %s ms%n", p99, maxP99Ms);
+                pass = false;
+            }
+        }
+        System.exit(pass ? 0 : 1);
+    }
+}
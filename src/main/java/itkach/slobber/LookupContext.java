@@ -0,0 +1,282 @@
+package itkach.slobber;
+
+import com.ibm.icu.text.Collator;
+import com.ibm.icu.text.RuleBasedCollator;
+import com.ibm.icu.util.ULocale;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import itkach.slob.Slob;
+
+/**
+ * Per-request key lookup across several slobs.
+ *
+ * By default this is slobj's own {@code Slob.find}. With
+ * {@code slobber.lookup.shared} set, slobs are searched here instead:
+ * the query's collation key is computed at most once per strength and
+ * shared by every slob searched in this request, each binary search
+ * probe collates only the probed key. This relies on slobj's strength
+ * order and collator settings (root locale, alternate shifted), so it
+ * stays opt-in until verified against real dictionaries with
+ * {@code slobber.lookup.verify}.
+ */
+class LookupContext {
+
+    final static boolean SHARED = Boolean.getBoolean("slobber.lookup.shared");
+
+    /**
+     * Run slobj's own lookup alongside the shared one and log differences.
+     */
+    final static boolean VERIFY = Boolean.getBoolean("slobber.lookup.verify");
+    final static int VERIFY_LIMIT = 200;
+
+    private final static Slob.Strength[] STRENGTHS = Slob.Strength.values();
+
+    private final static Map<Integer, Collator> collators = new HashMap<Integer, Collator>();
+
+    static {
+        for (Slob.Strength strength : STRENGTHS) {
+            if (collators.containsKey(strength.level)) {
+                continue;
+            }
+            RuleBasedCollator collator = (RuleBasedCollator) Collator.getInstance(ULocale.ROOT);
+            collator.setStrength(strength.level);
+            collator.setAlternateHandlingShifted(true);
+            collators.put(strength.level, collator.freeze());
+        }
+    }
+
+    static byte[] sortKey(int level, String s) {
+        return collators.get(level).getCollationKey(s).toByteArray();
+    }
+
+    /**
+     * Compares the first {@code aLen} bytes of {@code a} with the first
+     * {@code bLen} bytes of {@code b} as unsigned bytes.
+     */
+    static int compare(byte[] a, int aLen, byte[] b, int bLen) {
+        int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    final String key;
+
+    private final byte[][] queryKeys = new byte[STRENGTHS.length][];
+
+    LookupContext(String key) {
+        this.key = key;
+    }
+
+    private byte[] queryKey(Slob.Strength strength) {
+        byte[] qk = queryKeys[strength.ordinal()];
+        if (qk == null) {
+            byte[] full = sortKey(strength.level, key);
+            if (strength.prefix) {
+                //drop terminating zero so that longer keys match as prefix
+                int len = full.length;
+                if (len > 0 && full[len - 1] == 0) {
+                    len--;
+                }
+                qk = new byte[len];
+                System.arraycopy(full, 0, qk, 0, len);
+            }
+            else {
+                qk = full;
+            }
+            queryKeys[strength.ordinal()] = qk;
+        }
+        return qk;
+    }
+
+    int compareTo(String otherKey, Slob.Strength strength) {
+        byte[] qk = queryKey(strength);
+        byte[] ok = sortKey(strength.level, otherKey);
+        int okLen = strength.prefix ? Math.min(ok.length, qk.length) : ok.length;
+        return compare(ok, okLen, qk, qk.length);
+    }
+
+    int lowerBound(Slob slob, Slob.Strength strength) {
+        int lo = 0;
+        int hi = slob.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareTo(slob.get(mid).key, strength) < 0) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    Iterator<Slob.Blob> find(Slob[] slobs) {
+        if (!SHARED) {
+            return Slob.find(key, slobs);
+        }
+        Iterator<Slob.Blob> result = match(slobs, null, STRENGTHS[STRENGTHS.length - 1]);
+        if (VERIFY) {
+            return verify(result, Slob.find(key, slobs));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@code Slob.find(key, slobs, preferred, upToStrength)}.
+     * The shared lookup follows the reference (Python) slob
+     * implementation: matches are grouped by
+     * strength, from {@code IDENTICAL} up to {@code upToStrength}, within
+     * each strength the preferred slob is searched first, and refs to the
+     * same blob and fragment are returned once. Run with
+     * {@code slobber.lookup.verify} to check this against slobj.
+     */
+    Iterator<Slob.Blob> find(Slob[] slobs, Slob preferred, Slob.Strength upToStrength) {
+        if (!SHARED) {
+            return Slob.find(key, slobs, preferred, upToStrength);
+        }
+        Iterator<Slob.Blob> result = match(slobs, preferred, upToStrength);
+        if (VERIFY) {
+            return verify(result, Slob.find(key, slobs, preferred, upToStrength));
+        }
+        return result;
+    }
+
+    private static String describe(Slob.Blob b) {
+        return b.owner.getId() + "/" + b.id + "#" + b.fragment + " " + b.key;
+    }
+
+    /**
+     * Compares first {@link #VERIFY_LIMIT} results with those of slobj's
+     * own lookup, logs any difference and returns slobj's results.
+     */
+    private Iterator<Slob.Blob> verify(Iterator<Slob.Blob> shared, final Iterator<Slob.Blob> reference) {
+        final List<Slob.Blob> expected = new ArrayList<Slob.Blob>();
+        List<String> expectedNames = new ArrayList<String>();
+        while (expected.size() < VERIFY_LIMIT && reference.hasNext()) {
+            Slob.Blob b = reference.next();
+            expected.add(b);
+            expectedNames.add(describe(b));
+        }
+        List<String> actualNames = new ArrayList<String>();
+        while (actualNames.size() < VERIFY_LIMIT && shared.hasNext()) {
+            actualNames.add(describe(shared.next()));
+        }
+        if (!expectedNames.equals(actualNames)) {
+            Slobber.L.warning(String.format("Lookup mismatch for '%s'%n  slobj:  %s%n  shared: %s",
+                    key, expectedNames, actualNames));
+        }
+        return new Iterator<Slob.Blob>() {
+
+            private final Iterator<Slob.Blob> head = expected.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return head.hasNext() || reference.hasNext();
+            }
+
+            @Override
+            public Slob.Blob next() {
+                return head.hasNext() ? head.next() : reference.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Iterator<Slob.Blob> match(Slob[] slobs, Slob preferred, Slob.Strength upToStrength) {
+        List<Slob> ordered = new ArrayList<Slob>(slobs.length);
+        if (preferred != null) {
+            ordered.add(preferred);
+        }
+        for (Slob s : slobs) {
+            if (s != preferred) {
+                ordered.add(s);
+            }
+        }
+        return new MatchIterator(ordered.toArray(new Slob[ordered.size()]),
+                upToStrength.ordinal());
+    }
+
+    private class MatchIterator implements Iterator<Slob.Blob> {
+
+        private final Slob[] slobs;
+        private final int lastStrength;
+        private final Set<String> seen = new HashSet<String>();
+
+        private int strengthIndex = 0;
+        private int slobIndex = 0;
+        private int pos = -1;
+        private Slob.Blob next;
+
+        MatchIterator(Slob[] slobs, int lastStrength) {
+            this.slobs = slobs;
+            this.lastStrength = lastStrength;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (strengthIndex <= lastStrength && slobs.length > 0) {
+                Slob.Strength strength = STRENGTHS[strengthIndex];
+                Slob slob = slobs[slobIndex];
+                if (pos < 0) {
+                    pos = lowerBound(slob, strength);
+                }
+                if (pos < slob.size()) {
+                    Slob.Blob blob = slob.get(pos);
+                    if (compareTo(blob.key, strength) == 0) {
+                        String id = slob.getId() + ":" + blob.id + "#" + blob.fragment;
+                        pos++;
+                        if (seen.add(id)) {
+                            next = blob;
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                pos = -1;
+                slobIndex++;
+                if (slobIndex == slobs.length) {
+                    slobIndex = 0;
+                    strengthIndex++;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Slob.Blob next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Slob.Blob result = next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
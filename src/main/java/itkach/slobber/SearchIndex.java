@@ -0,0 +1,544 @@
+package itkach.slobber;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Memory mapped full text index of one slob, written by
+ * {@link SearchIndexWriter}. Index files are named after slob id, so an
+ * index never goes stale: a rebuilt slob gets a new id.
+ *
+ * File layout, all numbers big endian:
+ * <pre>
+ * header    magic, version, doc count, average doc length,
+ *           offsets of the sections below, term count, text doc count
+ * docs      doc count x (ref index, length in terms)
+ * postings  per term: skip table, then doc count x
+ *           (varint doc id delta, varint term frequency)
+ * strings   UTF-8 bytes of all terms
+ * terms     term count x (string offset, string length, postings offset, doc count),
+ *           sorted by term bytes
+ * </pre>
+ * Documents are the first ref of each distinct blob, doc ids are positions
+ * in the docs section and increase with ref index. Only text documents
+ * have terms, BM25 counts only those.
+ *
+ * Postings are split in blocks of {@link #BLOCK_SIZE}, doc id deltas
+ * restart from the last doc id of the previous block. Terms with more
+ * than one block start with a skip table of (last doc id, highest term
+ * frequency score, offset of block data from the end of the table) per
+ * block, which lets search jump to a doc id and pass over blocks that
+ * can't get a document into the results.
+ */
+class SearchIndex {
+
+    final static int MAGIC = 0x534c4958;
+    //bumped whenever Tokenizer changes the terms it produces, too
+    final static int VERSION = 3;
+    final static int HEADER_SIZE = 64;
+    final static int DOC_ENTRY_SIZE = 8;
+    final static int TERM_ENTRY_SIZE = 24;
+    final static int SKIP_ENTRY_SIZE = 12;
+    final static int BLOCK_SIZE = 128;
+
+    final static float K1 = 1.2f;
+    final static float B = 0.75f;
+
+    final static int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    final static Charset UTF8 = Charset.forName("UTF-8");
+
+    //Mapped segments overlap so that any fixed size entry can be
+    //read from the segment it starts in
+    final static int SEGMENT_SHIFT = 30;
+    final static long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    final static long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    final static int SEGMENT_OVERLAP = 1 << 16;
+
+    static class Hit {
+        final int refIndex;
+        final float score;
+
+        Hit(int refIndex, float score) {
+            this.refIndex = refIndex;
+            this.score = score;
+        }
+    }
+
+    static File fileFor(File dir, UUID slobId) {
+        return new File(dir, slobId + ".idx");
+    }
+
+    /**
+     * @return whether {@code file} exists and is an index in current format
+     */
+    static boolean isCurrent(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.length() >= HEADER_SIZE
+                        && raf.readInt() == MAGIC && raf.readInt() == VERSION;
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * BM25 term frequency component, shared with {@link SearchIndexWriter}
+     * so that block maximums it stores are exact upper bounds.
+     */
+    static float tfScore(int tf, int docLength, float avgDocLength) {
+        float norm = K1 * (1 - B + B * docLength / avgDocLength);
+        return tf * (K1 + 1) / (tf + norm);
+    }
+
+    private final MappedByteBuffer[] segments;
+    //one for the owner plus one per search in progress
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final int docCount;
+    private final int textDocCount;
+    private final float avgDocLength;
+    private final long docsOffset;
+    private final long termsOffset;
+    private final int termCount;
+
+    SearchIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int segmentCount = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[Math.max(1, segmentCount)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(size - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+            }
+        }
+        finally {
+            raf.close();
+        }
+        if (segments[0].capacity() < HEADER_SIZE
+                || getInt(0) != MAGIC || getInt(4) != VERSION) {
+            throw new IOException("Not a search index: " + file);
+        }
+        docCount = getInt(8);
+        avgDocLength = Float.intBitsToFloat(getInt(12));
+        docsOffset = getLong(16);
+        termsOffset = getLong(32);
+        termCount = getInt(40);
+        textDocCount = getInt(52);
+    }
+
+    /**
+     * Must be called before {@link #search(String, int)}, and
+     * {@link #release()} after it.
+     *
+     * @return false if index has been closed
+     */
+    boolean acquire() {
+        while (true) {
+            int n = refs.get();
+            if (n == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            for (MappedByteBuffer segment : segments) {
+                unmap(segment);
+            }
+        }
+    }
+
+    /**
+     * Unmaps index file once searches in progress are done instead of
+     * leaving its segments mapped until they are garbage collected.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                //Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            }
+            catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        }
+        catch (Exception e) {
+            //unmapped when garbage collected
+            Slobber.L.log(Level.FINE, "Can't unmap search index", e);
+        }
+    }
+
+    private ByteBuffer segmentAt(long pos) {
+        return segments[(int) (pos >>> SEGMENT_SHIFT)];
+    }
+
+    private int getInt(long pos) {
+        return segments[(int) (pos >>> SEGMENT_SHIFT)].getInt((int) (pos & SEGMENT_MASK));
+    }
+
+    private float getFloat(long pos) {
+        return Float.intBitsToFloat(getInt(pos));
+    }
+
+    private long getLong(long pos) {
+        return segments[(int) (pos >>> SEGMENT_SHIFT)].getLong((int) (pos & SEGMENT_MASK));
+    }
+
+    int getDocCount() {
+        return docCount;
+    }
+
+    /**
+     * @return position of term entry, or -1
+     */
+    private long findTerm(byte[] term) {
+        int lo = 0;
+        int hi = termCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long entry = termsOffset + (long) mid * TERM_ENTRY_SIZE;
+            int cmp = compareTerm(getLong(entry), getInt(entry + 8), term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            }
+            else if (cmp > 0) {
+                hi = mid - 1;
+            }
+            else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int compareTerm(long offset, int length, byte[] term) {
+        ByteBuffer segment = segments[(int) (offset >>> SEGMENT_SHIFT)];
+        int base = (int) (offset & SEGMENT_MASK);
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int d = (segment.get(base + i) & 0xff) - (term[i] & 0xff);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return length - term.length;
+    }
+
+    private int getDocLength(int docId) {
+        return getInt(docsOffset + (long) docId * DOC_ENTRY_SIZE + 4);
+    }
+
+    /**
+     * Iterates over postings of one term in doc id order.
+     */
+    private class Cursor {
+
+        final float idf;
+        final int df;
+        final int blockCount;
+        final long skipTable;
+        final long data;
+        //upper bound of this term's score in any document
+        final float maxScore;
+
+        int block;
+        int remaining;
+        ByteBuffer segment;
+        int offset;
+        float blockMaxScore;
+        int docId;
+        int tf;
+
+        Cursor(long entry) {
+            df = getInt(entry + 20);
+            idf = (float) Math.log(1 + (textDocCount - df + 0.5) / (df + 0.5));
+            blockCount = (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            long postings = getLong(entry + 12);
+            if (blockCount > 1) {
+                skipTable = postings;
+                data = postings + (long) blockCount * SKIP_ENTRY_SIZE;
+                float max = 0;
+                for (int i = 0; i < blockCount; i++) {
+                    max = Math.max(max, getFloat(skipTable + (long) i * SKIP_ENTRY_SIZE + 4));
+                }
+                maxScore = idf * max;
+            }
+            else {
+                skipTable = -1;
+                data = postings;
+                //tf score approaches k1 + 1 as tf grows
+                maxScore = idf * (K1 + 1);
+            }
+            enterBlock(0);
+            next();
+        }
+
+        private int lastDocId(int block) {
+            return getInt(skipTable + (long) block * SKIP_ENTRY_SIZE);
+        }
+
+        private void enterBlock(int block) {
+            this.block = block;
+            remaining = Math.min(BLOCK_SIZE, df - block * BLOCK_SIZE);
+            long pos = data;
+            if (skipTable < 0) {
+                docId = 0;
+                blockMaxScore = maxScore;
+            }
+            else {
+                long skipEntry = skipTable + (long) block * SKIP_ENTRY_SIZE;
+                docId = block == 0 ? 0 : lastDocId(block - 1);
+                blockMaxScore = idf * getFloat(skipEntry + 4);
+                pos += getInt(skipEntry + 8);
+            }
+            //a block is far smaller than segment overlap, so it can be
+            //read from the segment it starts in
+            segment = segmentAt(pos);
+            offset = (int) (pos & SEGMENT_MASK);
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = segment.get(offset++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        void next() {
+            if (remaining == 0) {
+                if (block + 1 >= blockCount) {
+                    docId = NO_MORE_DOCS;
+                    return;
+                }
+                enterBlock(block + 1);
+            }
+            docId += readVarint();
+            tf = readVarint();
+            remaining--;
+        }
+
+        /**
+         * Moves to the first document at or after {@code target}.
+         */
+        void advance(int target) {
+            if (docId >= target) {
+                return;
+            }
+            if (skipTable >= 0 && lastDocId(block) < target) {
+                int lo = block + 1;
+                int hi = blockCount - 1;
+                if (lo > hi) {
+                    docId = NO_MORE_DOCS;
+                    return;
+                }
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (lastDocId(mid) < target) {
+                        lo = mid + 1;
+                    }
+                    else {
+                        hi = mid;
+                    }
+                }
+                if (lastDocId(lo) < target) {
+                    docId = NO_MORE_DOCS;
+                    return;
+                }
+                enterBlock(lo);
+                next();
+            }
+            while (docId < target) {
+                next();
+            }
+        }
+
+        /**
+         * Passes over the rest of current block.
+         */
+        void nextBlock() {
+            if (block + 1 >= blockCount) {
+                docId = NO_MORE_DOCS;
+                return;
+            }
+            enterBlock(block + 1);
+            next();
+        }
+
+        float score() {
+            return idf * tfScore(tf, getDocLength(docId), avgDocLength);
+        }
+    }
+
+    /**
+     * Ranks documents containing any of the query terms with BM25.
+     *
+     * Postings are traversed document at a time with MaxScore pruning:
+     * once {@code limit} hits are collected, terms whose upper bounds
+     * together can't beat the lowest of them are only probed for
+     * documents found through other terms, and blocks whose maximum
+     * can't lift a document above it are skipped without decoding.
+     *
+     * @return at most {@code limit} hits, best first
+     */
+    List<Hit> search(String query, int limit) {
+        final Set<String> terms = new LinkedHashSet<String>();
+        Tokenizer.tokenize(query, false, new Tokenizer.Sink() {
+            @Override
+            public void term(String term) {
+                terms.add(term);
+            }
+        });
+        List<Cursor> found = new ArrayList<Cursor>();
+        for (String term : terms) {
+            long entry = findTerm(term.getBytes(UTF8));
+            if (entry >= 0) {
+                found.add(new Cursor(entry));
+            }
+        }
+        if (found.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        //lowest upper bound first
+        Collections.sort(found, new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor a, Cursor b) {
+                return Float.compare(a.maxScore, b.maxScore);
+            }
+        });
+        Cursor[] cursors = found.toArray(new Cursor[found.size()]);
+        int n = cursors.length;
+        //cumulative upper bounds, with a little slack for float rounding
+        float[] bounds = new float[n];
+        float total = 0;
+        for (int i = 0; i < n; i++) {
+            total += cursors[i].maxScore;
+            bounds[i] = total * 1.0001f;
+        }
+
+        //doc ids with lowest score on top
+        PriorityQueue<Hit> top = new PriorityQueue<Hit>(limit, new Comparator<Hit>() {
+            @Override
+            public int compare(Hit a, Hit b) {
+                return Float.compare(a.score, b.score);
+            }
+        });
+        float threshold = 0;
+        //cursors before this one are non-essential: documents matching
+        //only them can't get into top hits
+        int essential = 0;
+        while (essential < n) {
+            int docId = NO_MORE_DOCS;
+            for (int i = essential; i < n; i++) {
+                Cursor c = cursors[i];
+                float others = (total - c.maxScore) * 1.0001f;
+                while (top.size() == limit && c.docId != NO_MORE_DOCS
+                        && c.blockMaxScore * 1.0001f + others <= threshold) {
+                    c.nextBlock();
+                }
+                docId = Math.min(docId, c.docId);
+            }
+            if (docId == NO_MORE_DOCS) {
+                break;
+            }
+            float score = 0;
+            for (int i = essential; i < n; i++) {
+                Cursor c = cursors[i];
+                if (c.docId == docId) {
+                    score += c.score();
+                    c.next();
+                }
+            }
+            for (int i = essential - 1; i >= 0; i--) {
+                if (score + bounds[i] <= threshold) {
+                    break;
+                }
+                Cursor c = cursors[i];
+                c.advance(docId);
+                if (c.docId == docId) {
+                    score += c.score();
+                }
+            }
+            if (top.size() < limit) {
+                top.add(new Hit(docId, score));
+            }
+            else if (score > threshold) {
+                top.poll();
+                top.add(new Hit(docId, score));
+            }
+            else {
+                continue;
+            }
+            if (top.size() == limit) {
+                threshold = top.peek().score;
+                while (essential < n && bounds[essential] <= threshold) {
+                    essential++;
+                }
+            }
+        }
+
+        Hit[] result = new Hit[top.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            Hit h = top.poll();
+            int docId = h.refIndex;
+            int refIndex = getInt(docsOffset + (long) docId * DOC_ENTRY_SIZE);
+            result[i] = new Hit(refIndex, h.score);
+        }
+        return Arrays.asList(result);
+    }
+}
@@ -0,0 +1,699 @@
+package itkach.slobber;
+
+import org.simpleframework.http.parse.ContentTypeParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import itkach.slob.Slob;
+
+/**
+ * Builds {@link SearchIndex} files. Text of {@code text/html} and
+ * {@code text/plain} blobs is tokenized on all available cores, each
+ * worker inverting a contiguous range of documents. Whenever a worker's
+ * postings outgrow its share of {@code slobber.index.memory} megabytes
+ * they are written to a run file sorted by term, and the runs are then
+ * merged into the index, so memory use does not depend on slob size.
+ *
+ * Can be run as a standalone program to index slobs offline:
+ * <pre>
+ * java -cp slobber.jar itkach.slobber.SearchIndexWriter ~/Downloads/*.slob
+ * </pre>
+ */
+class SearchIndexWriter {
+
+    final static Logger L = Logger.getLogger(SearchIndexWriter.class.getName());
+
+    final static Charset UTF8 = Charset.forName("UTF-8");
+
+    static File getIndexDir() {
+        String dir = System.getProperty("slobber.index.dir");
+        if (dir != null) {
+            return new File(dir);
+        }
+        return new File(new File(System.getProperty("user.home"), ".slobber"), "index");
+    }
+
+    static int getThreads() {
+        return getThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    static int getThreads(int defaultThreads) {
+        return Integer.getInteger("slobber.index.threads", defaultThreads);
+    }
+
+    /**
+     * @return bytes of postings all workers may buffer before writing runs
+     */
+    static long getMemory() {
+        long defaultMB = Math.max(16, Math.min(256, Runtime.getRuntime().maxMemory() / 4 >> 20));
+        return Long.getLong("slobber.index.memory", defaultMB) << 20;
+    }
+
+    //rough heap cost of a new term: string, map entry, Postings and its array
+    final static int TERM_OVERHEAD = 160;
+
+    /**
+     * Growable list of (doc id, term frequency) pairs.
+     */
+    static class Postings {
+
+        int[] data = new int[4];
+        int size;
+
+        void add(int docId, int tf) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = docId;
+            data[size++] = tf;
+        }
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    final static Comparator<byte[]> UNSIGNED_BYTES = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int d = (a[i] & 0xff) - (b[i] & 0xff);
+                if (d != 0) {
+                    return d;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /**
+     * Postings of a range of documents sorted by term, written as
+     * (varint term length, term bytes, varint doc count, doc count x
+     * (varint doc id delta, varint term frequency)), ending with a zero
+     * term length.
+     */
+    static class Run {
+
+        final File file;
+        final int firstDoc;
+
+        Run(File file, int firstDoc) {
+            this.file = file;
+            this.firstDoc = firstDoc;
+        }
+    }
+
+    static class RunReader {
+
+        final int firstDoc;
+        final DataInputStream in;
+        byte[] term;
+        int count;
+
+        RunReader(Run run) throws IOException {
+            this.firstDoc = run.firstDoc;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(run.file), 1 << 16));
+        }
+
+        /**
+         * Moves to the next term, postings of current term must have
+         * been read.
+         *
+         * @return false at the end of run
+         */
+        boolean next() throws IOException {
+            int length = readVarint(in);
+            if (length == 0) {
+                term = null;
+                return false;
+            }
+            term = new byte[length];
+            in.readFully(term);
+            count = readVarint(in);
+            return true;
+        }
+    }
+
+    final static Comparator<RunReader> RUN_ORDER = new Comparator<RunReader>() {
+        @Override
+        public int compare(RunReader a, RunReader b) {
+            int cmp = UNSIGNED_BYTES.compare(a.term, b.term);
+            //runs cover disjoint doc ranges, take postings in doc id order
+            return cmp != 0 ? cmp : Integer.compare(a.firstDoc, b.firstDoc);
+        }
+    };
+
+    /**
+     * Refs to index, a slob or a stand-in for it in tests.
+     */
+    interface Source {
+
+        /**
+         * @return name for file names and log messages
+         */
+        String getName();
+
+        int size();
+
+        String getKey(int ref);
+
+        String getBlobId(int ref);
+
+        String getContentType(int ref);
+
+        ByteBuffer getContent(int ref);
+    }
+
+    static Source source(final Slob slob) {
+        return new Source() {
+            @Override
+            public String getName() {
+                return slob.getId().toString();
+            }
+
+            @Override
+            public int size() {
+                return slob.size();
+            }
+
+            @Override
+            public String getKey(int ref) {
+                return slob.get(ref).key;
+            }
+
+            @Override
+            public String getBlobId(int ref) {
+                return slob.get(ref).id;
+            }
+
+            @Override
+            public String getContentType(int ref) {
+                return slob.get(ref).getContentType();
+            }
+
+            @Override
+            public ByteBuffer getContent(int ref) {
+                return slob.get(ref).getContent().data;
+            }
+        };
+    }
+
+    private final Source source;
+    private final int threads;
+    private final long memory;
+
+    private int[] refIndexes;
+    private int[] docLengths;
+
+    SearchIndexWriter(Slob slob, int threads) {
+        this(source(slob), threads, getMemory());
+    }
+
+    SearchIndexWriter(Source source, int threads, long memory) {
+        this.source = source;
+        this.threads = Math.max(1, threads);
+        this.memory = memory;
+    }
+
+    private void collectDocs() {
+        Set<String> blobIds = new HashSet<String>();
+        int[] refs = new int[source.size()];
+        int count = 0;
+        for (int i = 0; i < refs.length; i++) {
+            if (blobIds.add(source.getBlobId(i))) {
+                refs[count++] = i;
+            }
+        }
+        refIndexes = Arrays.copyOf(refs, count);
+        docLengths = new int[count];
+    }
+
+    private List<Run> invert(int fromDoc, int toDoc, File dir) throws IOException {
+        List<Run> runs = new ArrayList<Run>();
+        long budget = Math.max(64 << 10, memory / threads);
+        long used = 0;
+        int runStart = fromDoc;
+        Map<String, Postings> postings = new HashMap<String, Postings>();
+        final Map<String, int[]> termCounts = new HashMap<String, int[]>();
+        Tokenizer.Sink sink = new Tokenizer.Sink() {
+            @Override
+            public void term(String term) {
+                int[] count = termCounts.get(term);
+                if (count == null) {
+                    termCounts.put(term, new int[] {1});
+                }
+                else {
+                    count[0]++;
+                }
+            }
+        };
+        for (int docId = fromDoc; docId < toDoc; docId++) {
+            int ref = refIndexes[docId];
+            try {
+                ContentTypeParser ctParser = new ContentTypeParser(source.getContentType(ref));
+                String type = ctParser.getType();
+                boolean html = "text/html".equals(type);
+                if (!html && !"text/plain".equals(type)) {
+                    continue;
+                }
+                Charset charset = UTF8;
+                String charsetName = ctParser.getCharset();
+                if (charsetName != null && Charset.isSupported(charsetName)) {
+                    charset = Charset.forName(charsetName);
+                }
+                ByteBuffer content = source.getContent(ref);
+                Tokenizer.tokenize(charset.decode(content.duplicate()), html, sink);
+            }
+            catch (Exception e) {
+                L.log(Level.WARNING, String.format("Failed to index %s in %s",
+                        source.getKey(ref), source.getName()), e);
+                termCounts.clear();
+                continue;
+            }
+            int length = 0;
+            for (Map.Entry<String, int[]> e : termCounts.entrySet()) {
+                int tf = e.getValue()[0];
+                length += tf;
+                Postings p = postings.get(e.getKey());
+                if (p == null) {
+                    p = new Postings();
+                    postings.put(e.getKey(), p);
+                    used += TERM_OVERHEAD + 2 * e.getKey().length();
+                }
+                int capacity = p.data.length;
+                p.add(docId, tf);
+                used += 4L * (p.data.length - capacity);
+            }
+            docLengths[docId] = length;
+            termCounts.clear();
+            if (used > budget) {
+                runs.add(writeRun(postings, runStart, dir));
+                postings.clear();
+                used = 0;
+                runStart = docId + 1;
+            }
+        }
+        if (!postings.isEmpty()) {
+            runs.add(writeRun(postings, runStart, dir));
+        }
+        return runs;
+    }
+
+    private Run writeRun(Map<String, Postings> postings, int firstDoc, File dir)
+            throws IOException {
+        final byte[][] termBytes = new byte[postings.size()][];
+        Postings[] lists = new Postings[termBytes.length];
+        int n = 0;
+        for (Map.Entry<String, Postings> e : postings.entrySet()) {
+            termBytes[n] = e.getKey().getBytes(UTF8);
+            lists[n] = e.getValue();
+            n++;
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return UNSIGNED_BYTES.compare(termBytes[a], termBytes[b]);
+            }
+        });
+        File file = File.createTempFile(source.getName() + "-", ".run", dir);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            for (int i : order) {
+                Postings p = lists[i];
+                writeVarint(out, termBytes[i].length);
+                out.write(termBytes[i]);
+                writeVarint(out, p.size / 2);
+                int prevDocId = 0;
+                for (int j = 0; j < p.size; j += 2) {
+                    writeVarint(out, p.data[j] - prevDocId);
+                    writeVarint(out, p.data[j + 1]);
+                    prevDocId = p.data[j];
+                }
+            }
+            writeVarint(out, 0);
+        }
+        catch (IOException e) {
+            out.close();
+            file.delete();
+            throw e;
+        }
+        out.close();
+        return new Run(file, firstDoc);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    void write(File file) throws IOException, InterruptedException {
+        long t0 = System.currentTimeMillis();
+        collectDocs();
+        int docCount = refIndexes.length;
+
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        File stringsTmp = new File(file.getPath() + ".strings.tmp");
+        File termsTmp = new File(file.getPath() + ".terms.tmp");
+
+        int chunkCount = Math.max(1, Math.min(docCount, threads * 4));
+        //workers run at the priority of the calling thread, so that
+        //builds in the background don't compete with request handling
+        final int priority = Thread.currentThread().getPriority();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "slobber-indexer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(priority);
+                return t;
+            }
+        });
+        List<Run> runs = new ArrayList<Run>();
+        List<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            List<Future<List<Run>>> futures = new ArrayList<Future<List<Run>>>();
+            for (int i = 0; i < chunkCount; i++) {
+                final int from = (int) ((long) docCount * i / chunkCount);
+                final int to = (int) ((long) docCount * (i + 1) / chunkCount);
+                futures.add(executor.submit(new Callable<List<Run>>() {
+                    @Override
+                    public List<Run> call() throws IOException {
+                        return invert(from, to, dir);
+                    }
+                }));
+            }
+            try {
+                for (Future<List<Run>> f : futures) {
+                    runs.addAll(f.get());
+                }
+            }
+            catch (ExecutionException e) {
+                //collect runs of other chunks so that they are deleted
+                for (Future<List<Run>> f : futures) {
+                    try {
+                        runs.addAll(f.get());
+                    }
+                    catch (ExecutionException ignored) {
+                    }
+                }
+                throw new IOException("Failed to index " + source.getName(), e.getCause());
+            }
+            finally {
+                executor.shutdownNow();
+            }
+
+            long totalLength = 0;
+            int textDocs = 0;
+            for (int length : docLengths) {
+                if (length > 0) {
+                    totalLength += length;
+                    textDocs++;
+                }
+            }
+            float avgDocLength = textDocs == 0 ? 1 : (float) totalLength / textDocs;
+
+            PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+                    Math.max(1, runs.size()), RUN_ORDER);
+            for (Run run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+
+            long docsOffset = SearchIndex.HEADER_SIZE;
+            long postingsOffset;
+            long stringsOffset;
+            long termsOffset;
+            int termCount = 0;
+            CountingOutputStream counter = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            DataOutputStream out = new DataOutputStream(counter);
+            DataOutputStream strings = null;
+            DataOutputStream terms = null;
+            try {
+                strings = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(stringsTmp), 1 << 16));
+                terms = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(termsTmp), 1 << 16));
+                out.write(new byte[SearchIndex.HEADER_SIZE]);
+                for (int i = 0; i < docCount; i++) {
+                    out.writeInt(refIndexes[i]);
+                    out.writeInt(docLengths[i]);
+                }
+                postingsOffset = counter.count;
+                Postings merged = new Postings();
+                ByteArrayOutputStream blockData = new ByteArrayOutputStream();
+                long stringOffset = 0;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    byte[] term = reader.term;
+                    long termPostings = counter.count;
+                    merged.size = 0;
+                    while (true) {
+                        int docId = 0;
+                        for (int j = 0; j < reader.count; j++) {
+                            docId += readVarint(reader.in);
+                            merged.add(docId, readVarint(reader.in));
+                        }
+                        if (reader.next()) {
+                            queue.add(reader);
+                        }
+                        if (queue.isEmpty()
+                                || UNSIGNED_BYTES.compare(queue.peek().term, term) != 0) {
+                            break;
+                        }
+                        reader = queue.poll();
+                    }
+                    writePostings(out, merged, blockData, avgDocLength);
+                    //string offsets are relative until strings are placed
+                    terms.writeLong(stringOffset);
+                    terms.writeInt(term.length);
+                    terms.writeLong(termPostings);
+                    terms.writeInt(merged.size / 2);
+                    strings.write(term);
+                    stringOffset += term.length;
+                    termCount++;
+                }
+                strings.close();
+                strings = null;
+                terms.close();
+                terms = null;
+
+                stringsOffset = counter.count;
+                copy(stringsTmp, out);
+                termsOffset = counter.count;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(termsTmp), 1 << 16));
+                try {
+                    for (int i = 0; i < termCount; i++) {
+                        out.writeLong(stringsOffset + in.readLong());
+                        out.writeInt(in.readInt());
+                        out.writeLong(in.readLong());
+                        out.writeInt(in.readInt());
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            finally {
+                out.close();
+                if (strings != null) {
+                    strings.close();
+                }
+                if (terms != null) {
+                    terms.close();
+                }
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.writeInt(SearchIndex.MAGIC);
+                raf.writeInt(SearchIndex.VERSION);
+                raf.writeInt(docCount);
+                raf.writeFloat(avgDocLength);
+                raf.writeLong(docsOffset);
+                raf.writeLong(postingsOffset);
+                raf.writeLong(termsOffset);
+                raf.writeInt(termCount);
+                raf.writeLong(stringsOffset);
+                raf.writeInt(textDocs);
+            }
+            finally {
+                raf.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Can't replace " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+            L.info(String.format("Indexed %d documents, %d terms of %s from %d runs in %d ms",
+                    docCount, termCount, source.getName(), runs.size(),
+                    System.currentTimeMillis() - t0));
+        }
+        finally {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+            for (Run run : runs) {
+                run.file.delete();
+            }
+            stringsTmp.delete();
+            termsTmp.delete();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Writes postings of one term in blocks, with a skip table if
+     * there is more than one block.
+     */
+    private void writePostings(DataOutputStream out, Postings p,
+            ByteArrayOutputStream blockData, float avgDocLength) throws IOException {
+        int df = p.size / 2;
+        int blockCount = (df + SearchIndex.BLOCK_SIZE - 1) / SearchIndex.BLOCK_SIZE;
+        OutputStream data = blockCount > 1 ? blockData : out;
+        blockData.reset();
+        int[] lastDocIds = new int[blockCount];
+        float[] maxScores = new float[blockCount];
+        int[] offsets = new int[blockCount];
+        int prevDocId = 0;
+        for (int block = 0; block < blockCount; block++) {
+            offsets[block] = blockData.size();
+            int end = Math.min(df, (block + 1) * SearchIndex.BLOCK_SIZE);
+            float maxScore = 0;
+            for (int i = block * SearchIndex.BLOCK_SIZE; i < end; i++) {
+                int docId = p.data[2 * i];
+                int tf = p.data[2 * i + 1];
+                writeVarint(data, docId - prevDocId);
+                writeVarint(data, tf);
+                prevDocId = docId;
+                maxScore = Math.max(maxScore,
+                        SearchIndex.tfScore(tf, docLengths[docId], avgDocLength));
+            }
+            lastDocIds[block] = prevDocId;
+            maxScores[block] = maxScore;
+        }
+        if (blockCount > 1) {
+            for (int block = 0; block < blockCount; block++) {
+                out.writeInt(lastDocIds[block]);
+                out.writeFloat(maxScores[block]);
+                out.writeInt(offsets[block]);
+            }
+            blockData.writeTo(out);
+        }
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = getIndexDir();
+        int threads = getThreads();
+        for (File f : Slobber.findDictionaryFiles(args)) {
+            Slob slob = new Slob(new RandomAccessFile(f, "r").getChannel(), f.getAbsolutePath());
+            File indexFile = SearchIndex.fileFor(dir, slob.getId());
+            if (SearchIndex.isCurrent(indexFile)) {
+                System.out.println("Already indexed: " + f);
+                continue;
+            }
+            System.out.println("Indexing " + f);
+            new SearchIndexWriter(slob, threads).write(indexFile);
+            System.out.println("Wrote " + indexFile);
+        }
+    }
+}
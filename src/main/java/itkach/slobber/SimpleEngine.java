@@ -0,0 +1,198 @@
+package itkach.slobber;
+
+import org.simpleframework.http.Status;
+import org.simpleframework.http.core.Container;
+import org.simpleframework.http.core.ContainerServer;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+
+/**
+ * {@link HttpEngine} backed by (patched) Simple 5.1.7.1 from libs/.
+ */
+class SimpleEngine implements HttpEngine {
+
+    //direct memory is limited to max heap size by default, keep idle
+    //buffers well below that on small heaps
+    final static BufferPool buffers = new BufferPool(
+            Integer.getInteger("slobber.pool.maxBufferSize", 4 << 20),
+            Integer.getInteger("slobber.pool.perClass", 16),
+            Long.getLong("slobber.pool.maxIdleBytes",
+                    Math.min(32L << 20, Runtime.getRuntime().maxMemory() / 16)));
+
+    static class SimpleRequest implements Request {
+
+        private final org.simpleframework.http.Request req;
+
+        SimpleRequest(org.simpleframework.http.Request req) {
+            this.req = req;
+        }
+
+        @Override
+        public String getMethod() {
+            return req.getMethod();
+        }
+
+        //Simple's PathParser resolves dot segments and gives null for
+        //paths with back references above the root, serve those as root
+        @Override
+        public String getPath() {
+            String path = req.getPath().getPath();
+            return path == null ? "/" : path;
+        }
+
+        @Override
+        public String[] getSegments() {
+            String[] segments = req.getPath().getSegments();
+            return segments == null ? new String[0] : segments;
+        }
+
+        @Override
+        public String getExtension() {
+            return req.getPath().getExtension();
+        }
+
+        @Override
+        public String getParameter(String name) {
+            return req.getQuery().get(name);
+        }
+
+        @Override
+        public String getQueryString() {
+            return req.getQuery().toString();
+        }
+
+        @Override
+        public String getValue(String headerName) {
+            return req.getValue(headerName);
+        }
+
+        @Override
+        public String toString() {
+            return req.toString();
+        }
+    }
+
+    static class SimpleResponse implements Response {
+
+        private final org.simpleframework.http.Response resp;
+
+        SimpleResponse(org.simpleframework.http.Response resp) {
+            this.resp = resp;
+            resp.setValue("Server", "Slobber/1.0 (Simple 5.1.6)");
+        }
+
+        @Override
+        public void setCode(int code) {
+            //Simple keeps "OK" as reason phrase unless told otherwise
+            resp.setCode(code);
+            resp.setDescription(Status.getDescription(code));
+        }
+
+        @Override
+        public int getCode() {
+            return resp.getCode();
+        }
+
+        @Override
+        public void setValue(String name, String value) {
+            resp.setValue(name, value);
+        }
+
+        @Override
+        public void setDate(String name, long date) {
+            resp.setDate(name, date);
+        }
+
+        @Override
+        public void setContentLength(long length) {
+            resp.setContentLength(length);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return resp.getOutputStream();
+        }
+
+        @Override
+        public PrintStream getPrintStream() throws IOException {
+            return resp.getPrintStream();
+        }
+
+        @Override
+        public void write(ByteBuffer bytes) throws IOException {
+            WritableByteChannel channel = resp.getByteChannel();
+            if (bytes.isDirect()) {
+                channel.write(bytes);
+                return;
+            }
+            //Socket writes from a heap buffer go through a temporary direct
+            //buffer as large as the write, which the JDK keeps per thread.
+            //Copy through one pooled buffer instead, slice by slice, so
+            //that neither grows with blob size. Simple may still copy a
+            //slice to the heap if the socket is not writable right away.
+            ByteBuffer source = bytes.duplicate();
+            ByteBuffer direct = buffers.lease(Math.min(source.remaining(), buffers.getMaxBufferSize()));
+            while (source.hasRemaining()) {
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + Math.min(slice.remaining(), direct.capacity()));
+                direct.clear();
+                direct.put(slice);
+                direct.flip();
+                source.position(slice.position());
+                channel.write(direct);
+                if (source.hasRemaining()) {
+                    //the slice buffer is reused, wait until it is sent
+                    resp.getOutputStream().flush();
+                }
+            }
+            bytes.position(bytes.limit());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                resp.close();
+            }
+            finally {
+                buffers.releaseLeases();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "simple";
+    }
+
+    @Override
+    public Server start(final Handler handler, SocketAddress address, int threads)
+            throws IOException {
+        Container container = new Container() {
+            @Override
+            public void handle(org.simpleframework.http.Request req,
+                               org.simpleframework.http.Response resp) {
+                handler.handle(new SimpleRequest(req), new SimpleResponse(resp));
+                if (Slobber.L.isLoggable(Level.FINE)) {
+                    Slobber.L.fine(buffers.toString());
+                }
+            }
+        };
+        final Connection connection = new SocketConnection(new ContainerServer(container, threads));
+        connection.connect(address);
+        return new Server() {
+            @Override
+            public void stop() throws IOException {
+                //also stops the container server
+                connection.close();
+            }
+        };
+    }
+}
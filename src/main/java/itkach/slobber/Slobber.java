@@ -4,17 +4,7 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
-import org.simpleframework.http.Path;
-import org.simpleframework.http.Query;
-import org.simpleframework.http.Request;
-import org.simpleframework.http.Response;
-import org.simpleframework.http.Status;
-import org.simpleframework.http.core.Container;
-import org.simpleframework.http.core.ContainerServer;
 import org.simpleframework.http.parse.ContentTypeParser;
-import org.simpleframework.transport.Server;
-import org.simpleframework.transport.connect.Connection;
-import org.simpleframework.transport.connect.SocketConnection;
 
 import java.awt.Desktop;
 import java.io.File;
@@ -34,6 +24,8 @@ import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -50,6 +42,9 @@ import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -57,19 +52,20 @@ import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import itkach.slob.Slob;
+import itkach.slobber.HttpEngine.Request;
+import itkach.slobber.HttpEngine.Response;
 
-public class Slobber implements Container {
+public class Slobber implements HttpEngine.Handler {
 
     final static Logger L = Logger.getLogger(Slobber.class.getName());
 
     private final Random random;
 
-    static abstract class GETContainer implements Container {
+    static abstract class GETContainer implements HttpEngine.Handler {
 
         @Override
         public void handle(Request req, Response resp) {
             long time = System.currentTimeMillis();
-            resp.setValue("Server", "Slobber/1.0 (Simple 5.1.6)");
             resp.setDate("Date", time);
             resp.setValue("Access-Control-Allow-Origin", req.getValue("Origin"));
             try {
@@ -77,7 +73,7 @@ public class Slobber implements Container {
                     GET(req, resp);
                 }
                 else {
-                    resp.setStatus(Status.METHOD_NOT_ALLOWED);
+                    resp.setCode(405);
                     resp.setValue("Content-Type", "text/plain");
                     resp.getPrintStream().printf("Method %s is not allowed", req.getMethod());
                 }
@@ -150,14 +146,13 @@ public class Slobber implements Container {
                 return;
             }
             File resourceFile;
-            Path path = req.getPath();
-            String extension =  path.getExtension();
+            String extension =  req.getExtension();
             if (staticRes.isFile()){
                 resourceFile = staticRes;
             }
             else {
                 StringBuilder fsPath = new StringBuilder();
-                String[] pathSegments = path.getSegments();
+                String[] pathSegments = req.getSegments();
                 for (int i = 1; i < pathSegments.length; i++) {
                     if (fsPath.length() > 0) {
                         fsPath.append("/");
@@ -165,11 +160,15 @@ public class Slobber implements Container {
                     fsPath.append(pathSegments[i]);
                 }
                 resourceFile = new File(staticRes, fsPath.toString());
+                if (!isWithin(staticRes, resourceFile)) {
+                    notFound(resp);
+                    return;
+                }
             }
             if (resourceFile.isDirectory()) {
-                if (!path.getPath().endsWith("/")) {
-                    resp.setValue("Location", path.getPath() + "/");
-                    resp.setStatus(Status.MOVED_PERMANENTLY);
+                if (!req.getPath().endsWith("/")) {
+                    resp.setValue("Location", req.getPath() + "/");
+                    resp.setCode(301);
                     return;
                 }
                 resourceFile = new File(resourceFile, "index.html");
@@ -190,15 +189,23 @@ public class Slobber implements Container {
         }
     }
 
+    static boolean isWithin(File dir, File file) throws IOException {
+        String dirPath = dir.getCanonicalPath();
+        String filePath = file.getCanonicalPath();
+        return filePath.equals(dirPath)
+                || filePath.startsWith(dirPath.endsWith(File.separator)
+                        ? dirPath : dirPath + File.separator);
+    }
+
     static class ResourceContainer extends GETContainer {
 
         @Override
         protected void GET(Request req, Response resp)
                 throws Exception {
-            Path path = req.getPath();
+            String path = req.getPath();
             L.fine("Got request: " + path);
-            String extension =  path.getExtension();
-            String resource = path.toString().substring(1);
+            String extension =  req.getExtension();
+            String resource = path.substring(1);
             if (resource.equals("")) {
                 resource = "index.html";
             }
@@ -220,9 +227,13 @@ public class Slobber implements Container {
 
     private List<Slob> slobs = Collections.emptyList();
     private Map<String, Slob> slobMap = new HashMap<String, Slob>();
-    private Map<String, Container> handlers = new HashMap<String, Container>();
-    private Container defaultResourceContainer = new ResourceContainer();
+    private Map<String, HttpEngine.Handler> handlers = new HashMap<String, HttpEngine.Handler>();
+    private HttpEngine.Handler defaultResourceContainer = new ResourceContainer();
     private ObjectMapper json = new ObjectMapper();
+    private volatile InfoSnapshot info = new InfoSnapshot(slobs);
+    private volatile Map<String, SearchIndex> searchIndexes = Collections.emptyMap();
+    private final File indexDir = SearchIndexWriter.getIndexDir();
+    private ExecutorService indexBuilder;
 
     private Comparator<Slob> createTimeComparator = new Comparator<Slob>() {
         @Override
@@ -235,6 +246,13 @@ public class Slobber implements Container {
         }
     };
 
+    private Comparator<Map<String, Object>> scoreComparator = new Comparator<Map<String, Object>>() {
+        @Override
+        public int compare(Map<String, Object> item1, Map<String, Object> item2) {
+            return Float.compare((Float) item2.get("score"), (Float) item1.get("score"));
+        }
+    };
+
     public Slob getSlob(String slobId) {
         return slobMap.get(slobId);
     }
@@ -252,6 +270,96 @@ public class Slobber implements Container {
         for (Slob s : this.slobs) {
             slobMap.put(s.getId().toString(), s);
         }
+        this.info = new InfoSnapshot(this.slobs);
+        openSearchIndexes(this.slobs);
+    }
+
+    private void openSearchIndexes(List<Slob> slobs) {
+        Map<String, SearchIndex> indexes = new HashMap<String, SearchIndex>();
+        final List<Slob> unindexed = new ArrayList<Slob>();
+        //same lock as buildSearchIndex, so that an index it adds
+        //for the new slobs is not lost
+        synchronized (this) {
+            Map<String, SearchIndex> previous = this.searchIndexes;
+            for (Slob s : slobs) {
+                String slobId = s.getId().toString();
+                SearchIndex index = previous.get(slobId);
+                if (index != null) {
+                    indexes.put(slobId, index);
+                    continue;
+                }
+                File indexFile = SearchIndex.fileFor(indexDir, s.getId());
+                if (!SearchIndex.isCurrent(indexFile)) {
+                    //missing or written by an older version
+                    unindexed.add(s);
+                    continue;
+                }
+                try {
+                    indexes.put(slobId, new SearchIndex(indexFile));
+                } catch (IOException e) {
+                    L.log(Level.WARNING, "Failed to open search index " + indexFile, e);
+                }
+            }
+            this.searchIndexes = indexes;
+            for (Map.Entry<String, SearchIndex> e : previous.entrySet()) {
+                if (!indexes.containsKey(e.getKey())) {
+                    e.getValue().close();
+                }
+            }
+            if (unindexed.isEmpty() || !Boolean.getBoolean("slobber.index.build")) {
+                return;
+            }
+            if (indexBuilder == null) {
+                indexBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "slobber-index-builder");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+            }
+        }
+        for (final Slob s : unindexed) {
+            indexBuilder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    buildSearchIndex(s);
+                }
+            });
+        }
+    }
+
+    private void buildSearchIndex(Slob s) {
+        String slobId = s.getId().toString();
+        File indexFile = SearchIndex.fileFor(indexDir, s.getId());
+        try {
+            if (!SearchIndex.isCurrent(indexFile)) {
+                L.info("Building search index for " + s.getTags().get("label"));
+                //leave most cores to request handling
+                int threads = SearchIndexWriter.getThreads(
+                        Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+                new SearchIndexWriter(s, threads).write(indexFile);
+            }
+            SearchIndex index = new SearchIndex(indexFile);
+            synchronized (this) {
+                if (getSlob(slobId) == s) {
+                    Map<String, SearchIndex> indexes = new HashMap<String, SearchIndex>(searchIndexes);
+                    SearchIndex replaced = indexes.put(slobId, index);
+                    searchIndexes = indexes;
+                    if (replaced != null) {
+                        replaced.close();
+                    }
+                }
+                else {
+                    //slob was removed while its index was being built
+                    index.close();
+                }
+            }
+        } catch (Exception | OutOfMemoryError e) {
+            L.log(Level.WARNING, "Failed to build search index for " + slobId, e);
+        }
     }
 
     public String getSlobURI(String slobId) {
@@ -329,6 +437,103 @@ public class Slobber implements Container {
         return data;
     }
 
+    /**
+     * Slob metadata serialized once per {@link #setSlobs(List)} call.
+     * Listing ETag is derived from slob ids, so it changes whenever the set
+     * of slobs (or their order) changes.
+     */
+    private class InfoSnapshot {
+
+        final List<Slob> slobs;
+        final String listETag;
+        private byte[] listJson;
+        private final Map<String, byte[]> slobJson = new HashMap<String, byte[]>();
+
+        InfoSnapshot(List<Slob> slobs) {
+            this.slobs = slobs;
+            this.listETag = mkListETag(slobs);
+        }
+
+        synchronized byte[] getListJson() throws IOException {
+            if (listJson == null) {
+                Map<String, Object> data = new HashMap<String, Object>();
+                List<Map<String, Object>> infoItems = new ArrayList<Map<String, Object>>();
+                data.put("slobs", infoItems);
+                for (Slob s : slobs) {
+                    infoItems.add(toInfoItem(s));
+                }
+                listJson = json.writeValueAsBytes(data);
+            }
+            return listJson;
+        }
+
+        synchronized byte[] getSlobJson(Slob s) throws IOException {
+            String id = s.getId().toString();
+            byte[] bytes = slobJson.get(id);
+            if (bytes == null) {
+                bytes = json.writeValueAsBytes(toInfoItem(s));
+                slobJson.put(id, bytes);
+            }
+            return bytes;
+        }
+    }
+
+    private static String mkListETag(List<Slob> slobs) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (Slob s : slobs) {
+            UUID id = s.getId();
+            ByteBuffer idBytes = ByteBuffer.allocate(16);
+            idBytes.putLong(id.getMostSignificantBits());
+            idBytes.putLong(id.getLeastSignificantBits());
+            digest.update(idBytes.array());
+        }
+        StringBuilder etag = new StringBuilder("\"");
+        for (byte b : digest.digest()) {
+            etag.append(String.format("%02x", b & 0xff));
+        }
+        etag.append('"');
+        return etag.toString();
+    }
+
+    /**
+     * If-None-Match uses weak comparison (RFC 7232, section 3.2), so
+     * {@code W/"x"} matches {@code "x"}.
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void serveJSON(Request req, Response resp, byte[] bytes, String etag)
+            throws IOException {
+        resp.setValue("Cache-Control", "no-cache");
+        resp.setValue("ETag", etag);
+        if (etagMatches(req.getValue("If-None-Match"), etag)) {
+            resp.setCode(304);
+            return;
+        }
+        resp.setValue("Content-Type", "application/json");
+        resp.setContentLength(bytes.length);
+        resp.getOutputStream().write(bytes);
+    }
+
     public Slobber() {
 
         json.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -361,13 +566,12 @@ public class Slobber implements Container {
         handlers.put("find", new GETContainer() {
             @Override
             public void GET(Request request, Response response) throws Exception{
-                Query q = request.getQuery();
-                String key = q.get("key");
+                String key = request.getParameter("key");
                 if (key == null) {
                     notFound(response);
                     return;
                 }
-                int limit = q.getInteger("limit") ;
+                int limit = parseInt(request.getParameter("limit"), 0);
                 if (limit > 10000) {
                     response.setCode(413);
                     return;
@@ -375,7 +579,8 @@ public class Slobber implements Container {
                 if (limit <= 0) {
                     limit = 100;
                 }
-                Iterator<Slob.Blob> result = Slob.find(key, getSlobs());
+                LookupContext lookup = new LookupContext(key);
+                Iterator<Slob.Blob> result = lookup.find(getSlobs());
                 List<Map<String, String>> items = new ArrayList<Map<String, String>>();
                 while (result.hasNext() && items.size() <= limit) {
                     Slob.Blob b = result.next();
@@ -393,6 +598,64 @@ public class Slobber implements Container {
             }
         });
 
+        handlers.put("search", new GETContainer() {
+            @Override
+            public void GET(Request request, Response response) throws Exception{
+                String q = request.getParameter("q");
+                if (q == null) {
+                    notFound(response);
+                    return;
+                }
+                int limit = parseInt(request.getParameter("limit"), 0);
+                if (limit > 1000) {
+                    response.setCode(413);
+                    return;
+                }
+                if (limit <= 0) {
+                    limit = 20;
+                }
+                String slobId = request.getParameter("slob");
+                Map<String, SearchIndex> indexes = searchIndexes;
+                List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+                for (Slob s : getSlobs()) {
+                    String id = s.getId().toString();
+                    SearchIndex index = indexes.get(id);
+                    if (index == null || (slobId != null && !slobId.equals(id))) {
+                        continue;
+                    }
+                    //slobs may be replaced and their indexes closed meanwhile
+                    if (!index.acquire()) {
+                        continue;
+                    }
+                    List<SearchIndex.Hit> hits;
+                    try {
+                        hits = index.search(q, limit);
+                    }
+                    finally {
+                        index.release();
+                    }
+                    for (SearchIndex.Hit hit : hits) {
+                        Slob.Blob b = s.get(hit.refIndex);
+                        Map<String, Object> item = new HashMap<String, Object>();
+                        item.put("url", mkContentURL(b));
+                        item.put("label", b.key);
+                        item.put("dictLabel", s.getTags().get("label"));
+                        item.put("score", hit.score);
+                        items.add(item);
+                    }
+                }
+                Collections.sort(items, scoreComparator);
+                if (items.size() > limit) {
+                    items = items.subList(0, limit);
+                }
+                response.setValue("Content-Type", "application/json");
+                OutputStream out = response.getOutputStream();
+                OutputStreamWriter os = new OutputStreamWriter(out, "UTF8");
+                json.writeValue(os, items);
+                os.close();
+            }
+        });
+
         handlers.put("random", new GETContainer() {
             @Override
             public void GET(Request request, Response response) throws Exception{
@@ -447,19 +710,10 @@ public class Slobber implements Container {
 
                  */
 
-                String[] pathSegments = req.getPath().getSegments();
+                String[] pathSegments = req.getSegments();
                 if (pathSegments.length  == 1) {
-                    resp.setValue("Content-Type", "application/json");
-                    OutputStream out = resp.getOutputStream();
-                    OutputStreamWriter os = new OutputStreamWriter(out, "UTF8");
-                    Map data = new HashMap();
-                    List infoItems = new ArrayList();
-                    data.put("slobs", infoItems);
-                    for (Slob s : slobs) {
-                        infoItems.add(toInfoItem(s));
-                    }
-                    resp.setValue("Cache-Control", "no-cache");
-                    json.writeValue(os, data);
+                    InfoSnapshot snapshot = info;
+                    serveJSON(req, resp, snapshot.getListJson(), snapshot.listETag);
                     return;
                 }
 
@@ -468,30 +722,27 @@ public class Slobber implements Container {
                 //and produce 3 segments. Looks like a bug in Simple
 
                 if (pathSegments.length  == 2) {
-                    resp.setValue("Content-Type", "application/json");
-                    OutputStream out = resp.getOutputStream();
-                    OutputStreamWriter os = new OutputStreamWriter(out, "UTF8");
-
                     String slobIdOrUri = pathSegments[1];
                     slobIdOrUri = URLDecoder.decode(slobIdOrUri, "UTF-8");
                     Slob s = findSlob(slobIdOrUri);
 
                     if (s == null) {
-                        resp.setStatus(Status.NOT_FOUND);
+                        resp.setCode(404);
+                        resp.setValue("Content-Type", "application/json");
+                        OutputStream out = resp.getOutputStream();
+                        OutputStreamWriter os = new OutputStreamWriter(out, "UTF8");
                         json.writeValue(os, new HashMap<String, Object>());
                         return;
                     }
 
-                    resp.setValue("Cache-Control", "no-cache");
-                    json.writeValue(os, toInfoItem(s));
+                    serveJSON(req, resp, info.getSlobJson(s), mkETag(s.getId()));
                     return;
                 }
 
-                Query q = req.getQuery();
                 String ifNoneMatch = req.getValue("If-None-Match");
-                String blobId = q.get("blob");
+                String blobId = req.getParameter("blob");
 
-                String key = q.get("key");
+                String key = req.getParameter("key");
                 if (pathSegments.length >= 3) {
                     StringBuilder keyBuilder = new StringBuilder();
                     for (int i = 2; i < pathSegments.length; i++) {
@@ -531,7 +782,7 @@ public class Slobber implements Container {
 
                 if (key != null && ifNoneMatch != null) {
                     if (mkETag(slob.getId()).equals(ifNoneMatch)) {
-                        resp.setStatus(Status.NOT_MODIFIED);
+                        resp.setCode(304);
                         return;
                     }
                 }
@@ -541,7 +792,8 @@ public class Slobber implements Container {
 
                 Collections.sort(candidates, createTimeComparator);
 
-                Iterator<Slob.Blob> result = Slob.find(key,
+                LookupContext lookup = new LookupContext(key);
+                Iterator<Slob.Blob> result = lookup.find(
                         candidates.toArray(new Slob[candidates.size()]),
                         slob, Slob.Strength.SECONDARY);
                 if (result.hasNext()) {
@@ -568,19 +820,37 @@ public class Slobber implements Container {
                               Slob.Content content) throws IOException {
         resp.setValue("Content-Type", content.type);
         ByteBuffer bytes = content.data;
-        resp.getByteChannel().write(bytes);
+        int size = bytes.remaining();
+        resp.setContentLength(size);
+        resp.write(bytes);
+    }
+
+    public HttpEngine.Server start(String addrStr, int port) throws IOException {
+        HttpEngine engine = HttpEngine.Factory.forName(System.getProperty("slobber.engine"));
+        return start(engine, addrStr, port);
     }
 
-    public Server start(String addrStr, int port) throws IOException {
-        Server server = new ContainerServer(this, 16);
-        Connection connection = new SocketConnection(server);
+    public HttpEngine.Server start(HttpEngine engine, String addrStr, int port) throws IOException {
         SocketAddress address = new InetSocketAddress(InetAddress.getByName(addrStr), port);
-        connection.connect(address);
-        return server;
+        int threads = Integer.getInteger("slobber.threads", 16);
+        L.info(String.format("Starting %s engine with %d threads", engine.getName(), threads));
+        return engine.start(this, address, threads);
+    }
+
+    static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     static void notFound(Response resp) throws IOException {
-        resp.setStatus(Status.NOT_FOUND);
+        resp.setCode(404);
         resp.setValue("Content-Type", "text/plain");
         PrintStream body = resp.getPrintStream();
         body.printf("Not found");
@@ -601,7 +871,7 @@ public class Slobber implements Container {
         if (L.isLoggable(Level.FINE)) {
             L.fine(req.toString());
         }
-        String[] pathSegments = req.getPath().getSegments();
+        String[] pathSegments = req.getSegments();
         String resourceName;
         if (pathSegments.length == 0) {
             resourceName = "";
@@ -610,7 +880,7 @@ public class Slobber implements Container {
             resourceName = pathSegments[0];
         }
         L.fine("Looking for handler for '" + resourceName + "'");
-        Container handler = this.handlers.get(resourceName);
+        HttpEngine.Handler handler = this.handlers.get(resourceName);
         if (handler == null) {
             defaultResourceContainer.handle(req, resp);
         }
@@ -622,7 +892,7 @@ public class Slobber implements Container {
             s.append(req.getMethod());
             s.append(" ");
             s.append(req.getPath());
-            String qs = req.getQuery().toString();
+            String qs = req.getQueryString();
             if (qs.length() > 0) {
                 s.append("?");
                 s.append(qs);
@@ -0,0 +1,261 @@
+package itkach.slobber;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Splits text into search terms. Used both to index content and to
+ * parse queries, so the two always agree.
+ *
+ * Terms are maximal runs of letters and digits along with the combining
+ * marks that follow them, NFC normalized and lower cased. Han, Hiragana
+ * and Katakana characters are emitted one per term since these scripts
+ * don't separate words with spaces. With {@code html} set, markup is
+ * skipped: tags, comments and the contents of script and style elements
+ * produce no terms, common character references are decoded and other
+ * named references are dropped.
+ */
+class Tokenizer {
+
+    final static int MAX_TERM_LENGTH = 64;
+
+    final static int SOFT_HYPHEN = 0xad;
+
+    /**
+     * Names of Latin-1 references for U+00C0 to U+00FF, mostly accented
+     * letters that would otherwise split words.
+     */
+    private final static String[] LATIN1_NAMES = {
+        "Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig", "Ccedil",
+        "Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml",
+        "ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times",
+        "Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig",
+        "agrave", "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil",
+        "egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml",
+        "eth", "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide",
+        "oslash", "ugrave", "uacute", "ucirc", "uuml", "yacute", "thorn", "yuml"
+    };
+
+    private final static Map<String, Integer> NAMED_REFERENCES = new HashMap<String, Integer>();
+
+    static {
+        NAMED_REFERENCES.put("amp", (int) '&');
+        NAMED_REFERENCES.put("lt", (int) '<');
+        NAMED_REFERENCES.put("gt", (int) '>');
+        NAMED_REFERENCES.put("quot", (int) '"');
+        NAMED_REFERENCES.put("apos", (int) '\'');
+        NAMED_REFERENCES.put("nbsp", (int) ' ');
+        NAMED_REFERENCES.put("shy", SOFT_HYPHEN);
+        for (int i = 0; i < LATIN1_NAMES.length; i++) {
+            NAMED_REFERENCES.put(LATIN1_NAMES[i], 0xc0 + i);
+        }
+    }
+
+    interface Sink {
+
+        void term(String term);
+    }
+
+    static void tokenize(CharSequence text, boolean html, Sink sink) {
+        StringBuilder term = new StringBuilder();
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            char c = text.charAt(i);
+            if (html && c == '<') {
+                flush(term, sink);
+                i = skipMarkup(text, i);
+                continue;
+            }
+            int cp;
+            if (html && c == '&') {
+                int end = indexOf(text, ';', i + 1, Math.min(len, i + 34));
+                if (end >= 0 && isReference(text, i + 1, end)) {
+                    cp = decodeEntity(text, i + 1, end);
+                    i = end + 1;
+                    if (cp < 0) {
+                        //unknown named reference such as &mdash;, its
+                        //name is not text
+                        cp = ' ';
+                    }
+                }
+                else {
+                    cp = c;
+                    i++;
+                }
+            }
+            else {
+                cp = Character.codePointAt(text, i);
+                i += Character.charCount(cp);
+            }
+            if (cp == SOFT_HYPHEN) {
+                //invisible hyphenation hint inside a word
+                continue;
+            }
+            if (isIdeographic(cp)) {
+                flush(term, sink);
+                term.appendCodePoint(cp);
+                flush(term, sink);
+            }
+            else if (Character.isLetterOrDigit(cp)
+                    || (isMark(cp) && term.length() > 0)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(cp);
+                }
+            }
+            else {
+                flush(term, sink);
+            }
+        }
+        flush(term, sink);
+    }
+
+    private static void flush(StringBuilder term, Sink sink) {
+        if (term.length() > 0) {
+            String s = term.toString();
+            if (!Normalizer.isNormalized(s, Normalizer.Form.NFC)) {
+                s = Normalizer.normalize(s, Normalizer.Form.NFC);
+            }
+            sink.term(s.toLowerCase(Locale.ROOT));
+            term.setLength(0);
+        }
+    }
+
+    /**
+     * Combining marks are part of the word they follow: vowel signs in
+     * Indic scripts, Arabic harakat, decomposed accents.
+     */
+    private static boolean isMark(int cp) {
+        int type = Character.getType(cp);
+        return type == Character.NON_SPACING_MARK
+                || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK;
+    }
+
+    private static boolean isIdeographic(int cp) {
+        if (cp < 0x2e80) {
+            return false;
+        }
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA;
+    }
+
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String s) {
+        if (offset + s.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.toLowerCase(text.charAt(offset + i)) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence text, String s, int from) {
+        int last = text.length() - s.length();
+        for (int i = from; i <= last; i++) {
+            if (regionMatches(text, i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index just past the tag, comment or element with
+     *         unparsed content starting at {@code start}
+     */
+    private static int skipMarkup(CharSequence text, int start) {
+        int len = text.length();
+        if (regionMatches(text, start, "<!--")) {
+            int end = indexOf(text, "-->", start + 4);
+            return end < 0 ? len : end + 3;
+        }
+        int end = indexOf(text, '>', start + 1, len);
+        if (end < 0) {
+            return len;
+        }
+        String closing = null;
+        if (regionMatches(text, start, "<script")) {
+            closing = "</script";
+        }
+        else if (regionMatches(text, start, "<style")) {
+            closing = "</style";
+        }
+        if (closing != null) {
+            int close = indexOf(text, closing, end + 1);
+            if (close < 0) {
+                return len;
+            }
+            end = indexOf(text, '>', close, len);
+            return end < 0 ? len : end + 1;
+        }
+        return end + 1;
+    }
+
+    /**
+     * @return whether characters between {@code start} and {@code end}
+     *         look like a character reference name or number
+     */
+    private static boolean isReference(CharSequence text, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        if (text.charAt(start) == '#') {
+            start++;
+        }
+        else if (!isAsciiLetter(text.charAt(start))) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (!isAsciiLetter(c) && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return start < end;
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * @return code point for character reference between {@code start}
+     *         (after '&amp;') and {@code end} (at ';'), or -1
+     */
+    private static int decodeEntity(CharSequence text, int start, int end) {
+        String name = text.subSequence(start, end).toString();
+        if (name.startsWith("#")) {
+            int cp;
+            try {
+                if (name.startsWith("#x") || name.startsWith("#X")) {
+                    cp = Integer.parseInt(name.substring(2), 16);
+                }
+                else {
+                    cp = Integer.parseInt(name.substring(1));
+                }
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+            return Character.isValidCodePoint(cp) ? cp : -1;
+        }
+        Integer cp = NAMED_REFERENCES.get(name);
+        return cp == null ? -1 : cp;
+    }
+}
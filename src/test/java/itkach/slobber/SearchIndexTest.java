@@ -0,0 +1,323 @@
+package itkach.slobber;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link SearchIndex#search} against exhaustive BM25 scoring of
+ * the same documents, on an index built from many small runs so that
+ * postings span several blocks and are merged across runs.
+ */
+public class SearchIndexTest {
+
+    final static int DOC_COUNT = 5000;
+    final static int QUERY_COUNT = 300;
+    final static int[] LIMITS = {1, 5, 10, 50, 1000};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static class Doc {
+        final String key;
+        final String blobId;
+        final String contentType;
+        final String text;
+
+        Doc(String key, String blobId, String contentType, String text) {
+            this.key = key;
+            this.blobId = blobId;
+            this.contentType = contentType;
+            this.text = text;
+        }
+    }
+
+    static class MemorySource implements SearchIndexWriter.Source {
+
+        final List<Doc> docs;
+
+        MemorySource(List<Doc> docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public int size() {
+            return docs.size();
+        }
+
+        @Override
+        public String getKey(int ref) {
+            return docs.get(ref).key;
+        }
+
+        @Override
+        public String getBlobId(int ref) {
+            return docs.get(ref).blobId;
+        }
+
+        @Override
+        public String getContentType(int ref) {
+            return docs.get(ref).contentType;
+        }
+
+        @Override
+        public ByteBuffer getContent(int ref) {
+            return ByteBuffer.wrap(docs.get(ref).text.getBytes(SearchIndex.UTF8));
+        }
+    }
+
+    private List<Doc> docs;
+    private String[] words;
+    private Random random;
+    private SearchIndex index;
+
+    @Before
+    public void setUp() {
+        random = new Random(42);
+        words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+        }
+        docs = new ArrayList<Doc>();
+        for (int i = 0; i < DOC_COUNT; i++) {
+            String key = "key" + i;
+            if (i % 97 == 0) {
+                docs.add(new Doc(key, "blob" + i, "image/png", "w0 w1 w2"));
+            }
+            else if (i % 50 == 0) {
+                //another key for the previous blob, indexed once
+                Doc prev = docs.get(i - 1);
+                docs.add(new Doc(key, prev.blobId, prev.contentType, prev.text));
+            }
+            else if (i % 3 == 0) {
+                docs.add(new Doc(key, "blob" + i, "text/html; charset=utf-8",
+                        "<p class=\"w1\">" + randomText(1 + random.nextInt(200)) + "</p>"));
+            }
+            else {
+                docs.add(new Doc(key, "blob" + i, "text/plain", randomText(1 + random.nextInt(200))));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    //skewed towards low word numbers so that common terms span many blocks
+    private String randomWord() {
+        double x = random.nextDouble();
+        return words[(int) (x * x * x * words.length)];
+    }
+
+    private String randomText(int length) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                s.append(' ');
+            }
+            s.append(randomWord());
+        }
+        return s.toString();
+    }
+
+    private File build(String name, int threads, long memory) throws Exception {
+        File file = new File(tmp.getRoot(), name + ".idx");
+        new SearchIndexWriter(new MemorySource(docs), threads, memory).write(file);
+        return file;
+    }
+
+    private static Map<String, Integer> termCounts(Doc doc) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        String type = doc.contentType;
+        if (!type.startsWith("text/")) {
+            return counts;
+        }
+        Tokenizer.tokenize(doc.text, type.startsWith("text/html"), new Tokenizer.Sink() {
+            @Override
+            public void term(String term) {
+                Integer count = counts.get(term);
+                counts.put(term, count == null ? 1 : count + 1);
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * Term counts of indexed documents by ref, skipping repeated blobs
+     * like {@link SearchIndexWriter} does.
+     */
+    private Map<Integer, Map<String, Integer>> countTerms() {
+        Map<Integer, Map<String, Integer>> counts = new HashMap<Integer, Map<String, Integer>>();
+        Set<String> blobIds = new HashSet<String>();
+        for (int ref = 0; ref < docs.size(); ref++) {
+            Doc doc = docs.get(ref);
+            if (blobIds.add(doc.blobId)) {
+                counts.put(ref, termCounts(doc));
+            }
+        }
+        return counts;
+    }
+
+    private static int length(Map<String, Integer> counts) {
+        int length = 0;
+        for (int tf : counts.values()) {
+            length += tf;
+        }
+        return length;
+    }
+
+    /**
+     * @return scores of all documents matching any of query terms, by ref
+     */
+    private static Map<Integer, Float> score(Map<Integer, Map<String, Integer>> counts,
+            Set<String> query) {
+        long totalLength = 0;
+        int textDocs = 0;
+        Map<String, Integer> dfs = new HashMap<String, Integer>();
+        for (Map<String, Integer> c : counts.values()) {
+            int length = length(c);
+            if (length > 0) {
+                totalLength += length;
+                textDocs++;
+            }
+            for (String term : query) {
+                if (c.containsKey(term)) {
+                    Integer df = dfs.get(term);
+                    dfs.put(term, df == null ? 1 : df + 1);
+                }
+            }
+        }
+        float avgDocLength = (float) totalLength / textDocs;
+        Map<Integer, Float> scores = new HashMap<Integer, Float>();
+        for (Map.Entry<Integer, Map<String, Integer>> e : counts.entrySet()) {
+            Map<String, Integer> c = e.getValue();
+            int length = length(c);
+            float score = 0;
+            boolean matched = false;
+            for (String term : query) {
+                Integer tf = c.get(term);
+                if (tf == null) {
+                    continue;
+                }
+                int df = dfs.get(term);
+                float idf = (float) Math.log(1 + (textDocs - df + 0.5) / (df + 0.5));
+                score += idf * SearchIndex.tfScore(tf, length, avgDocLength);
+                matched = true;
+            }
+            if (matched) {
+                scores.put(e.getKey(), score);
+            }
+        }
+        return scores;
+    }
+
+    private static void assertClose(String message, float expected, float actual) {
+        float tolerance = 1e-3f * Math.max(1, Math.abs(expected));
+        assertTrue(message + ": expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+
+    @Test
+    public void searchMatchesExhaustiveScoring() throws Exception {
+        //a tiny budget makes every worker write many runs
+        File file = build("small-runs", 3, 64 << 10);
+        assertTrue(SearchIndex.isCurrent(file));
+        index = new SearchIndex(file);
+        Map<Integer, Map<String, Integer>> counts = countTerms();
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            Set<String> terms = new HashSet<String>();
+            StringBuilder query = new StringBuilder();
+            int termCount = 1 + random.nextInt(4);
+            for (int i = 0; i < termCount; i++) {
+                String word = random.nextInt(10) == 0 ? "missing" + i : randomWord();
+                terms.add(word);
+                query.append(word).append(' ');
+            }
+            Map<Integer, Float> expected = score(counts, terms);
+            List<Float> expectedScores = new ArrayList<Float>(expected.values());
+            Collections.sort(expectedScores, Collections.reverseOrder());
+            for (int limit : LIMITS) {
+                String message = "query '" + query + "' limit " + limit;
+                List<SearchIndex.Hit> hits = index.search(query.toString(), limit);
+                assertEquals(message, Math.min(limit, expected.size()), hits.size());
+                for (int i = 0; i < hits.size(); i++) {
+                    SearchIndex.Hit hit = hits.get(i);
+                    Float score = expected.get(hit.refIndex);
+                    assertTrue(message + " unexpected hit " + hit.refIndex, score != null);
+                    assertClose(message + " hit " + hit.refIndex, score, hit.score);
+                    //ties at the cut may be broken either way, scores may not
+                    assertClose(message + " rank " + i, expectedScores.get(i), hit.score);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void runCountDoesNotChangeIndex() throws Exception {
+        File single = build("single-run", 1, 256 << 20);
+        File many = build("many-runs", 4, 64 << 10);
+        assertArrayEquals(Files.readAllBytes(single.toPath()), Files.readAllBytes(many.toPath()));
+    }
+
+    @Test
+    public void emptyAndUnknownQueries() throws Exception {
+        index = new SearchIndex(build("index", 2, 64 << 10));
+        assertTrue(index.search("", 10).isEmpty());
+        assertTrue(index.search("missing", 10).isEmpty());
+        assertTrue(index.search("w0", 0).isEmpty());
+        assertFalse(index.search("w0", 10).isEmpty());
+    }
+
+    @Test
+    public void olderVersionsAreNotCurrent() throws IOException {
+        File file = tmp.newFile("old.idx");
+        byte[] header = new byte[SearchIndex.HEADER_SIZE];
+        ByteBuffer.wrap(header).putInt(SearchIndex.MAGIC).putInt(SearchIndex.VERSION - 1);
+        Files.write(file.toPath(), header);
+        assertFalse(SearchIndex.isCurrent(file));
+    }
+
+    @Test
+    public void hitsAreSortedByScore() throws Exception {
+        index = new SearchIndex(build("index", 2, 64 << 10));
+        List<SearchIndex.Hit> hits = index.search("w0 w1 w5", 100);
+        List<SearchIndex.Hit> sorted = new ArrayList<SearchIndex.Hit>(hits);
+        Collections.sort(sorted, new Comparator<SearchIndex.Hit>() {
+            @Override
+            public int compare(SearchIndex.Hit a, SearchIndex.Hit b) {
+                return Float.compare(b.score, a.score);
+            }
+        });
+        assertEquals(Arrays.asList(sorted.toArray()), Arrays.asList(hits.toArray()));
+    }
+}